@@ -0,0 +1,228 @@
+package link.infra.tinymap.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays Leaflet-like map browsing against a running TinyMap server
+ * Each simulated client keeps a viewport of tiles, and repeatedly pans or zooms it, fetching every newly visible tile
+ * over up to 6 connections like a browser would, then pauses as if the user was looking at the map
+ */
+public class LoadTest {
+	private final String baseUrl;
+	private final String dim;
+	private final int clients;
+	private final long durationMillis;
+	private final int radius;
+
+	private final Recorder recorder;
+
+	private LoadTest(Map<String, String> options) {
+		baseUrl = options.getOrDefault("url", "http://127.0.0.1:8080");
+		dim = options.getOrDefault("dim", "minecraft:overworld");
+		clients = Integer.parseInt(options.getOrDefault("clients", "10"));
+		durationMillis = Long.parseLong(options.getOrDefault("duration", "60")) * 1000;
+		radius = Integer.parseInt(options.getOrDefault("radius", "32"));
+		recorder = new Recorder(Integer.parseInt(options.getOrDefault("timeout", "10")) * 1000);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		if (args.length % 2 != 0) {
+			throw new IllegalArgumentException("Missing value for option " + args[args.length - 1]);
+		}
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		new LoadTest(options).run();
+	}
+
+	private void run() throws Exception {
+		System.out.printf("Running %d clients against %s (%s) for %ds%n", clients, baseUrl, dim, durationMillis / 1000);
+		ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+		List<Future<?>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		long end = System.currentTimeMillis() + durationMillis;
+		for (int i = 0; i < clients; i++) {
+			long seed = i;
+			futures.add(clientPool.submit(() -> {
+				new Client(new Random(seed), end).run();
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		clientPool.shutdown();
+		recorder.report(System.nanoTime() - start);
+	}
+
+	private class Client {
+		// Native zoom level tiles visible at once, at the default zoom level of the web map
+		private static final int VIEWPORT_WIDTH = 8;
+		private static final int VIEWPORT_HEIGHT = 5;
+		private static final int MAX_SCALE = 8;
+
+		private final Random random;
+		private final long end;
+		// Browsers use at most 6 connections per host
+		private final ExecutorService connections = Executors.newFixedThreadPool(6);
+
+		private int centerX;
+		private int centerZ;
+		// How many native tiles fit in one screen tile; zooming out past the native zoom level shows more tiles
+		private int scale = 1;
+
+		Client(Random random, long end) {
+			this.random = random;
+			this.end = end;
+			centerX = random.nextInt(radius * 2 + 1) - radius;
+			centerZ = random.nextInt(radius * 2 + 1) - radius;
+		}
+
+		void run() throws Exception {
+			try {
+				fetch(visibleTiles());
+				while (System.currentTimeMillis() < end) {
+					List<long[]> before = visibleTiles();
+					int action = random.nextInt(10);
+					if (action < 7) {
+						// Pan by a few tiles, as if dragging the map
+						centerX = clamp(centerX + (random.nextInt(5) - 2) * scale);
+						centerZ = clamp(centerZ + (random.nextInt(5) - 2) * scale);
+					} else if (action < 9) {
+						scale = Math.min(scale * 2, MAX_SCALE);
+					} else {
+						scale = Math.max(scale / 2, 1);
+					}
+					List<long[]> after = visibleTiles();
+					after.removeIf(tile -> before.stream().anyMatch(other -> Arrays.equals(tile, other)));
+					fetch(after);
+
+					Thread.sleep(100 + random.nextInt(400));
+				}
+			} finally {
+				connections.shutdown();
+			}
+		}
+
+		private int clamp(int coord) {
+			return Math.max(-radius, Math.min(radius, coord));
+		}
+
+		private List<long[]> visibleTiles() {
+			List<long[]> tiles = new ArrayList<>();
+			int halfWidth = VIEWPORT_WIDTH * scale / 2;
+			int halfHeight = VIEWPORT_HEIGHT * scale / 2;
+			for (int x = centerX - halfWidth; x <= centerX + halfWidth; x++) {
+				for (int z = centerZ - halfHeight; z <= centerZ + halfHeight; z++) {
+					tiles.add(new long[]{x, z});
+				}
+			}
+			return tiles;
+		}
+
+		private void fetch(List<long[]> tiles) throws Exception {
+			List<Future<?>> requests = new ArrayList<>();
+			for (long[] tile : tiles) {
+				requests.add(connections.submit(() -> recorder.request(baseUrl + "/tiles/" + dim + "/0/" + tile[0] + "/" + tile[1] + "/tile.png")));
+			}
+			for (Future<?> request : requests) {
+				request.get();
+			}
+		}
+	}
+
+	private static class Recorder {
+		private final AtomicLong ok = new AtomicLong();
+		private final AtomicLong notFound = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		// Also counted as errors
+		private final AtomicLong timeouts = new AtomicLong();
+		private final int timeoutMillis;
+		private long[] latencies = new long[1024];
+		private int latencyCount = 0;
+
+		Recorder(int timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		Void request(String url) {
+			byte[] discard = new byte[8192];
+			long start = System.nanoTime();
+			try {
+				HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+				// A stalled server should show up as errors, rather than hanging the run
+				conn.setConnectTimeout(timeoutMillis);
+				conn.setReadTimeout(timeoutMillis);
+				int status = conn.getResponseCode();
+				InputStream body = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+				if (body != null) {
+					try (InputStream in = body) {
+						while (in.read(discard) >= 0) {
+							// Read the whole tile, as a browser would
+						}
+					}
+				}
+				if (status == 200) {
+					ok.incrementAndGet();
+				} else if (status == 404) {
+					// Expected for tiles outside the explored area
+					notFound.incrementAndGet();
+				} else {
+					errors.incrementAndGet();
+				}
+			} catch (SocketTimeoutException e) {
+				timeouts.incrementAndGet();
+				errors.incrementAndGet();
+			} catch (IOException e) {
+				errors.incrementAndGet();
+			}
+			record(System.nanoTime() - start);
+			return null;
+		}
+
+		private synchronized void record(long latency) {
+			if (latencyCount == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[latencyCount++] = latency;
+		}
+
+		synchronized void report(long elapsedNanos) {
+			long[] sorted = Arrays.copyOf(latencies, latencyCount);
+			Arrays.sort(sorted);
+			long total = ok.get() + notFound.get() + errors.get();
+			double seconds = elapsedNanos / 1e9;
+			System.out.printf("Requests:   %d (%d ok, %d not found, %d errors, of which %d timed out)%n", total, ok.get(), notFound.get(), errors.get(), timeouts.get());
+			System.out.printf("Throughput: %.1f req/s%n", total / seconds);
+			System.out.printf("Latency:    p50 %.1fms, p99 %.1fms, p999 %.1fms, max %.1fms%n",
+				percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1));
+			System.out.printf("Error rate: %.2f%%%n", total == 0 ? 0 : errors.get() * 100.0 / total);
+		}
+
+		private static double percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+		}
+	}
+}
@@ -5,6 +5,8 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import link.infra.tinymap.mixin.MinecraftServerAccessor;
+import link.infra.tinymap.mixin.ThreadedAnvilChunkStorageAccessor;
+import net.minecraft.SharedConstants;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtList;
 import net.minecraft.server.MinecraftServer;
@@ -37,10 +39,30 @@ class BlockDigger {
 		this.tacs = world.getChunkManager().threadedAnvilChunkStorage;
 	}
 
-	// Thread-local session of BlockDigger
-	public class Session {
+	// Chunk data caches are reused by each thread that starts renders, so that requests don't allocate a new map each
+	// time; static and holding only NBT, so a thread's cache never keeps a digger (or its world) alive
+	private static final ThreadLocal<Long2ObjectMap<NbtCompound>> CHUNK_DATA_CACHES = ThreadLocal.withInitial(Long2ObjectOpenHashMap::new);
+
+	/**
+	 * Gets a session for rendering a new tile, using this thread's (cleared) chunk data cache
+	 */
+	public Session getSession() {
+		Long2ObjectMap<NbtCompound> cache = CHUNK_DATA_CACHES.get();
+		synchronized (cache) {
+			cache.clear();
+		}
+		return new Session(cache);
+	}
+
+	// Session of BlockDigger for rendering a single tile; chunks may be read from several threads at once
+	public class Session implements ChunkSource {
 		// Saved in testTileExists - as this data will be read again when rendering the chunk, might as well only read it once
-		private final Long2ObjectMap<NbtCompound> unloadedChunkCachedData = new Long2ObjectOpenHashMap<>();
+		// Guarded by itself
+		private final Long2ObjectMap<NbtCompound> unloadedChunkCachedData;
+
+		private Session(Long2ObjectMap<NbtCompound> unloadedChunkCachedData) {
+			this.unloadedChunkCachedData = unloadedChunkCachedData;
+		}
 
 		public boolean testTileExists(int tileX, int tileZ, int zoomShift) {
 			int regionSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_REGION_SHIFT - zoomShift);
@@ -98,10 +120,11 @@ class BlockDigger {
 
 					// Attempt to get it's NBT
 					try {
-						ChunkPos pos = new ChunkPos(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ);
-						NbtCompound chunkTag = tacs.getNbt(pos);
+						NbtCompound chunkTag = tacs.getNbt(new ChunkPos(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ));
 						if (chunkTag != null) {
-							unloadedChunkCachedData.put(pos.toLong(), chunkTag);
+							synchronized (unloadedChunkCachedData) {
+								unloadedChunkCachedData.put(ChunkPos.toLong(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ), chunkTag);
+							}
 							return true;
 						}
 					} catch (IOException e) {
@@ -115,16 +138,19 @@ class BlockDigger {
 			return false;
 		}
 
+		@Override
 		public Chunk getChunkView(int x, int z) {
 			if (world.isChunkLoaded(x, z)) {
 				return world.getChunk(x, z);
 			} else {
-				ChunkPos pos = new ChunkPos(x, z);
-				NbtCompound chunkData = unloadedChunkCachedData.remove(pos.toLong());
+				NbtCompound chunkData;
+				synchronized (unloadedChunkCachedData) {
+					chunkData = unloadedChunkCachedData.remove(ChunkPos.toLong(x, z));
+				}
 				if (chunkData == null) {
 					try {
 						// TODO: cache??
-						chunkData = tacs.getNbt(pos);
+						chunkData = tacs.getNbt(new ChunkPos(x, z));
 					} catch (IOException e) {
 						// TODO: better logging
 						e.printStackTrace();
@@ -135,39 +161,72 @@ class BlockDigger {
 					}
 				}
 
-				NbtCompound level = chunkData.getCompound("Level");
-				ChunkStatus status = ChunkStatus.byId(level.getString("Status"));
-				if (!status.isAtLeast(ChunkStatus.FULL)) {
-					return null;
-				}
-				NbtList sectionList = level.getList("Sections", 10);
-				ChunkSection[] sections = new ChunkSection[16];
-
-				for (int i = 0; i < sectionList.size(); ++i) {
-					NbtCompound sectionTag = sectionList.getCompound(i);
-					int y = sectionTag.getByte("Y");
-					if (sectionTag.contains("Palette", 9) && sectionTag.contains("BlockStates", 12)) {
-						ChunkSection section = new ChunkSection(y << 4);
-						section.getContainer().read(sectionTag.getList("Palette", 10), sectionTag.getLongArray("BlockStates"));
-						section.calculateCounts();
-						if (!section.isEmpty()) {
-							sections[y] = section;
-						}
-					}
-				}
+				return decodeChunk(upgradeChunkData(chunkData));
+			}
+		}
+	}
 
-				Chunk unloadedChunkView = new UnloadedChunkView(sections);
+	File getRegionFolder() {
+		return regionFolder;
+	}
 
-				NbtCompound heightmaps = level.getCompound("Heightmaps");
-				String heightmapName = Heightmap.Type.WORLD_SURFACE.getName();
-				if (heightmaps.contains(heightmapName, 12)) {
-					unloadedChunkView.setHeightmap(Heightmap.Type.WORLD_SURFACE, heightmaps.getLongArray(heightmapName));
-				} else {
-					Heightmap.populateHeightmaps(unloadedChunkView, Collections.singleton(Heightmap.Type.WORLD_SURFACE));
-				}
+	/**
+	 * Decodes chunk data read directly from a region file - if it is missing (as it is stored externally), it is loaded
+	 * through the chunk storage instead
+	 */
+	Chunk decodeRegionChunk(int x, int z, NbtCompound chunkData) throws IOException {
+		if (chunkData == null) {
+			chunkData = tacs.getNbt(new ChunkPos(x, z));
+			if (chunkData == null) {
+				return null;
+			}
+		}
+		return decodeChunk(upgradeChunkData(chunkData));
+	}
+
+	/**
+	 * Runs the data fixers on chunk data saved by an older version, as the chunk storage does when loading a chunk -
+	 * getNbt only returns the data as it was saved
+	 */
+	private NbtCompound upgradeChunkData(NbtCompound chunkData) {
+		if (chunkData.getInt("DataVersion") == SharedConstants.getGameVersion().getWorldVersion()) {
+			return chunkData;
+		}
+		return tacs.updateChunkNbt(world.getRegistryKey(), ((ThreadedAnvilChunkStorageAccessor) tacs).getPersistentStateManagerFactory(), chunkData);
+	}
 
-				return unloadedChunkView;
+	private static Chunk decodeChunk(NbtCompound chunkData) {
+		NbtCompound level = chunkData.getCompound("Level");
+		ChunkStatus status = ChunkStatus.byId(level.getString("Status"));
+		if (!status.isAtLeast(ChunkStatus.FULL)) {
+			return null;
+		}
+		NbtList sectionList = level.getList("Sections", 10);
+		ChunkSection[] sections = new ChunkSection[16];
+
+		for (int i = 0; i < sectionList.size(); ++i) {
+			NbtCompound sectionTag = sectionList.getCompound(i);
+			int y = sectionTag.getByte("Y");
+			if (sectionTag.contains("Palette", 9) && sectionTag.contains("BlockStates", 12)) {
+				ChunkSection section = new ChunkSection(y << 4);
+				section.getContainer().read(sectionTag.getList("Palette", 10), sectionTag.getLongArray("BlockStates"));
+				section.calculateCounts();
+				if (!section.isEmpty()) {
+					sections[y] = section;
+				}
 			}
 		}
+
+		Chunk unloadedChunkView = new UnloadedChunkView(sections);
+
+		NbtCompound heightmaps = level.getCompound("Heightmaps");
+		String heightmapName = Heightmap.Type.WORLD_SURFACE.getName();
+		if (heightmaps.contains(heightmapName, 12)) {
+			unloadedChunkView.setHeightmap(Heightmap.Type.WORLD_SURFACE, heightmaps.getLongArray(heightmapName));
+		} else {
+			Heightmap.populateHeightmaps(unloadedChunkView, Collections.singleton(Heightmap.Type.WORLD_SURFACE));
+		}
+
+		return unloadedChunkView;
 	}
 }
@@ -0,0 +1,13 @@
+package link.infra.tinymap;
+
+import net.minecraft.world.chunk.Chunk;
+
+/**
+ * Somewhere chunks can be read from for rendering, whether they are loaded or not
+ */
+interface ChunkSource {
+	/**
+	 * Gets a view of the chunk at the given chunk coordinates, or null if it hasn't been generated
+	 */
+	Chunk getChunkView(int x, int z);
+}
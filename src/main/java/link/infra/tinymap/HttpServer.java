@@ -1,16 +1,23 @@
 package link.infra.tinymap;
 
 import io.javalin.Javalin;
+import io.javalin.http.Context;
 import io.javalin.http.NotFoundResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.resource.PathResource;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 public class HttpServer {
 	private static final Logger LOGGER = LogManager.getLogger();
@@ -46,15 +53,37 @@ public class HttpServer {
 			});
 		});
 
+		app.exception(RenderThrottle.ThrottledException.class, (e, ctx) -> {
+			ctx.status(503);
+			ctx.header("Retry-After", "5");
+		});
+
+		app.get("/tiles/{dim}/{zoom}/manifest.json", ctx -> {
+			String manifest = tileGenerator.getManifest(
+				ctx.pathParam("dim"),
+				ctx.pathParamAsClass("zoom", Integer.class).get());
+			if (manifest == null) {
+				throw new NotFoundResponse();
+			}
+			String etag = "\"" + Integer.toHexString(manifest.hashCode()) + "\"";
+			ctx.header("Cache-Control", "public, max-age=60");
+			ctx.header("ETag", etag);
+			if (etag.equals(ctx.header("If-None-Match"))) {
+				ctx.status(304);
+				return;
+			}
+			ctx.contentType("application/json");
+			ctx.result(manifest);
+		});
+
 		app.get("/tiles/{dim}/{zoom}/{x}/{z}/tile.png", ctx -> {
-			byte[] tile = tileGenerator.getTile(
+			RenderedTile tile = tileGenerator.getTile(
 				ctx.pathParam("dim"),
 				ctx.pathParamAsClass("x", Integer.class).get(),
 				ctx.pathParamAsClass("z", Integer.class).get(),
 				0);
 			if (tile != null) {
-				ctx.contentType("image/png");
-				ctx.result(tile);
+				sendTile(ctx, tile);
 			} else {
 				throw new NotFoundResponse();
 			}
@@ -64,4 +93,102 @@ public class HttpServer {
 
 		return app;
 	}
+
+	/**
+	 * Writes a tile straight from its buffer to Jetty's output, bypassing Javalin's result stream
+	 * Tiles from the tile store are slices of the mapped pack file, so they go from the page cache to the socket without
+	 * being copied through the heap, and are written asynchronously; freshly rendered tiles are backed by the render
+	 * thread's encode buffer, so they must be written before this thread renders another tile
+	 */
+	private static void sendTile(Context ctx, RenderedTile renderedTile) throws IOException {
+		ByteBuffer tile = renderedTile.data;
+		int length = tile.remaining();
+		// A tile only changes when it is rendered again, so its render time identifies this version of it
+		String etag = "\"" + Long.toHexString(renderedTile.renderTime) + "\"";
+		ctx.header("ETag", etag);
+		ctx.header("Accept-Ranges", "bytes");
+		if (etag.equals(ctx.header("If-None-Match"))) {
+			ctx.status(304);
+			return;
+		}
+		String range = ctx.header("Range");
+		// A range of a different version of the tile can't be resumed, so send the whole tile instead
+		String ifRange = ctx.header("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			int[] bounds = parseRange(range, length);
+			if (bounds == null) {
+				ctx.status(416);
+				ctx.header("Content-Range", "bytes */" + length);
+				return;
+			}
+			if (bounds.length == 2) {
+				tile = tile.duplicate();
+				tile.limit(tile.position() + bounds[1] + 1);
+				tile.position(tile.position() + bounds[0]);
+				ctx.status(206);
+				ctx.header("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+			}
+		}
+		ctx.contentType("image/png");
+
+		Response response = Request.getBaseRequest(ctx.req).getResponse();
+		response.setContentLength(tile.remaining());
+		if (tile.isDirect()) {
+			CompletableFuture<Void> sent = new CompletableFuture<>();
+			response.getHttpOutput().sendContent(tile, new Callback() {
+				@Override
+				public void succeeded() {
+					sent.complete(null);
+				}
+
+				@Override
+				public void failed(Throwable x) {
+					sent.completeExceptionally(x);
+				}
+			});
+			ctx.future(sent);
+		} else {
+			response.getHttpOutput().sendContent(tile);
+		}
+	}
+
+	/**
+	 * Parses a single byte range, returning the inclusive [start, end] offsets, an empty array if the header should be
+	 * ignored (as it is malformed or has multiple ranges), or null if the range can't be satisfied
+	 */
+	private static int[] parseRange(String range, int length) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new int[0];
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new int[0];
+		}
+		long start;
+		long end;
+		try {
+			if (dash == 0) {
+				// Suffix range: the last n bytes
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix == 0) {
+					return null;
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+				if (end < start) {
+					return new int[0];
+				}
+			}
+		} catch (NumberFormatException e) {
+			return new int[0];
+		}
+		if (start >= length) {
+			return null;
+		}
+		return new int[]{(int) start, (int) end};
+	}
 }
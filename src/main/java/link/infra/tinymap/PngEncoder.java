@@ -0,0 +1,101 @@
+package link.infra.tinymap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal PNG encoder for tiles, which reuses all of its buffers between images so that encoding doesn't allocate
+ * Writes 8-bit RGBA with the Sub filter on every row, which compresses the flat colours of map tiles well
+ */
+class PngEncoder {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+	private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+	private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+	private static final int FILTER_SUB = 1;
+
+	private final Deflater deflater = new Deflater();
+	private final CRC32 crc = new CRC32();
+	private final byte[] chunkHeader = new byte[13];
+	private final byte[] deflateBuffer = new byte[16 * 1024];
+	private final ReusableByteArrayOutputStream compressed = new ReusableByteArrayOutputStream();
+	private byte[] row = new byte[0];
+
+	/**
+	 * Encodes an image of packed ABGR pixels (as rendered by TileGenerator) as a PNG, appending it to out
+	 */
+	public void encode(int[] pixels, int width, int height, ByteArrayOutputStream out) {
+		int rowLength = 1 + width * 4;
+		if (row.length != rowLength) {
+			row = new byte[rowLength];
+		}
+
+		compressed.reset();
+		deflater.reset();
+		for (int y = 0; y < height; y++) {
+			row[0] = FILTER_SUB;
+			int prevR = 0, prevG = 0, prevB = 0, prevA = 0;
+			for (int x = 0; x < width; x++) {
+				int pixel = pixels[y * width + x];
+				int r = pixel & 0xff;
+				int g = (pixel >>> 8) & 0xff;
+				int b = (pixel >>> 16) & 0xff;
+				int a = pixel >>> 24;
+				int i = 1 + x * 4;
+				row[i] = (byte) (r - prevR);
+				row[i + 1] = (byte) (g - prevG);
+				row[i + 2] = (byte) (b - prevB);
+				row[i + 3] = (byte) (a - prevA);
+				prevR = r;
+				prevG = g;
+				prevB = b;
+				prevA = a;
+			}
+			deflater.setInput(row, 0, rowLength);
+			while (!deflater.needsInput()) {
+				compressed.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			compressed.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+		}
+
+		out.write(SIGNATURE, 0, SIGNATURE.length);
+		writeInt(chunkHeader, 0, width);
+		writeInt(chunkHeader, 4, height);
+		chunkHeader[8] = 8; // Bit depth
+		chunkHeader[9] = 6; // Colour type: RGBA
+		chunkHeader[10] = 0; // Compression: deflate
+		chunkHeader[11] = 0; // Filter method: adaptive
+		chunkHeader[12] = 0; // Interlacing: none
+		writeChunk(out, IHDR, chunkHeader, 13);
+		writeChunk(out, IDAT, compressed.getBuffer(), compressed.size());
+		writeChunk(out, IEND, chunkHeader, 0);
+	}
+
+	private void writeChunk(ByteArrayOutputStream out, byte[] type, byte[] data, int length) {
+		writeInt(out, length);
+		out.write(type, 0, type.length);
+		out.write(data, 0, length);
+		crc.reset();
+		crc.update(type, 0, type.length);
+		crc.update(data, 0, length);
+		writeInt(out, (int) crc.getValue());
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static void writeInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,280 @@
+package link.infra.tinymap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.Chunk;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * All the chunks of one region file, read in a single sequential pass in the order they are laid out on disk and then
+ * decoded in parallel one strip of rows at a time, for rendering every tile in a region at once
+ * Only the strip being rendered (and the row before it, for shading) is kept decoded, as a whole region of decoded
+ * chunks takes up a lot of memory
+ * Chunks outside the region are read from the fallback source; loaded chunks always come from the world
+ */
+class RegionChunks implements ChunkSource {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	static final int CHUNKS_PER_REGION = 32 * 32;
+	static final int TILES_PER_REGION = TileGenerator.rightShiftButReversible(1, -TileGenerator.TILE_TO_REGION_SHIFT);
+	private static final Pattern REGION_FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+	private static final int SECTOR_SIZE = 4096;
+	// Chunks too large for the region file are stored in a separate .mcc file
+	private static final byte[] EXTERNAL_CHUNK = new byte[0];
+
+	private final BlockDigger digger;
+	private final ServerWorld world;
+	private final File regionFile;
+	private final int regionX;
+	private final int regionZ;
+	// Compressed chunk data, until it has been decoded
+	private final byte[][] payloads;
+	private final Chunk[] chunks = new Chunk[CHUNKS_PER_REGION];
+	private final ChunkSource fallback;
+
+	private RegionChunks(BlockDigger digger, ServerWorld world, File regionFile, int regionX, int regionZ, byte[][] payloads) {
+		this.digger = digger;
+		this.world = world;
+		this.regionFile = regionFile;
+		this.regionX = regionX;
+		this.regionZ = regionZ;
+		this.payloads = payloads;
+		this.fallback = digger.getSession();
+	}
+
+	/**
+	 * Reads the data of every chunk in a region; nothing is decoded until decodeRows is called
+	 */
+	public static RegionChunks read(BlockDigger digger, ServerWorld world, int regionX, int regionZ) throws IOException {
+		File regionFile = new File(digger.getRegionFolder(), "r." + regionX + "." + regionZ + ".mca");
+		return new RegionChunks(digger, world, regionFile, regionX, regionZ, readPayloads(regionFile));
+	}
+
+	/**
+	 * Decodes the chunks in rows [startZ, endZ) of the region, and drops the decoded chunks before row startZ - 1, which
+	 * is still needed to shade row startZ
+	 */
+	public void decodeRows(int startZ, int endZ, ForkJoinPool decodePool) throws IOException {
+		Arrays.fill(chunks, 0, Math.max(0, startZ - 1) * 32, null);
+		try {
+			decodePool.submit(() -> IntStream.range(startZ * 32, endZ * 32).parallel().forEach(i -> {
+				byte[] payload = payloads[i];
+				if (payload == null) {
+					return;
+				}
+				payloads[i] = null;
+				int x = (regionX << 5) + (i & 31);
+				int z = (regionZ << 5) + (i >> 5);
+				try {
+					chunks[i] = digger.decodeRegionChunk(x, z, payload == EXTERNAL_CHUNK ? null : decompress(payload));
+				} catch (IOException e) {
+					LOGGER.warn("Failed to read chunk " + x + ", " + z + " from " + regionFile, e);
+				}
+			})).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to decode chunks from " + regionFile, e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the compressed data of every chunk in the region file, indexed in the same order as the region header
+	 */
+	private static byte[][] readPayloads(File regionFile) throws IOException {
+		byte[][] payloads = new byte[CHUNKS_PER_REGION][];
+		if (!regionFile.exists()) {
+			return payloads;
+		}
+
+		try (FileChannel channel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ)) {
+			int[] header = readLocations(channel);
+
+			// Each location is (sector offset << 8) | sector count; sorting them gives the on-disk order
+			long[] locations = new long[CHUNKS_PER_REGION];
+			int count = 0;
+			for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+				int location = header[i];
+				if (location != 0) {
+					locations[count++] = ((location & 0xFFFFFFFFL) << 10) | i;
+				}
+			}
+			Arrays.sort(locations, 0, count);
+
+			ByteBuffer sectors = ByteBuffer.allocate(SECTOR_SIZE);
+			for (int i = 0; i < count; i++) {
+				int index = (int) (locations[i] & (CHUNKS_PER_REGION - 1));
+				int location = (int) (locations[i] >>> 10);
+				long offset = (long) (location >>> 8) * SECTOR_SIZE;
+				int size = (location & 0xFF) * SECTOR_SIZE;
+				if (sectors.capacity() < size) {
+					sectors = ByteBuffer.allocate(size);
+				}
+				sectors.clear().limit(size);
+				if (!readFully(channel, sectors, offset)) {
+					LOGGER.warn("Chunk {} is truncated in {}", index, regionFile);
+					continue;
+				}
+				sectors.flip();
+
+				int length = sectors.getInt();
+				if (length <= 0 || length > sectors.remaining()) {
+					LOGGER.warn("Chunk {} has an invalid length in {}", index, regionFile);
+					continue;
+				}
+				byte compression = sectors.get(sectors.position());
+				if ((compression & 0x80) != 0) {
+					payloads[index] = EXTERNAL_CHUNK;
+					continue;
+				}
+				// Keep the compression type byte with the data
+				payloads[index] = new byte[length];
+				sectors.get(payloads[index]);
+			}
+		}
+		return payloads;
+	}
+
+	/**
+	 * Reads the chunk locations from the header of a region file; a location of 0 means the chunk doesn't exist
+	 */
+	static int[] readLocations(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(CHUNKS_PER_REGION * 4);
+		int[] locations = new int[CHUNKS_PER_REGION];
+		if (readFully(channel, header, 0)) {
+			header.flip();
+			header.asIntBuffer().get(locations);
+		}
+		return locations;
+	}
+
+	/**
+	 * Reads the times each chunk was last saved from the header of a region file, in seconds since the epoch
+	 */
+	static int[] readTimestamps(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(CHUNKS_PER_REGION * 4);
+		int[] timestamps = new int[CHUNKS_PER_REGION];
+		if (readFully(channel, header, SECTOR_SIZE)) {
+			header.flip();
+			header.asIntBuffer().get(timestamps);
+		}
+		return timestamps;
+	}
+
+	/**
+	 * Lists the region files in a folder by region pos, skipping anything that isn't named like a region file
+	 */
+	static Long2ObjectMap<File> listRegionFiles(File regionFolder) {
+		Long2ObjectMap<File> regionFiles = new Long2ObjectOpenHashMap<>();
+		File[] files = regionFolder.listFiles();
+		if (files == null) {
+			return regionFiles;
+		}
+		for (File file : files) {
+			Matcher matcher = REGION_FILE_NAME.matcher(file.getName());
+			if (!matcher.matches()) {
+				continue;
+			}
+			try {
+				regionFiles.put(ChunkPos.toLong(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))), file);
+			} catch (NumberFormatException ignored) {
+				// Out of range of an int, so not a region Minecraft would have written
+			}
+		}
+		return regionFiles;
+	}
+
+	/**
+	 * Gets the index of a zoom level 0 tile within its region: tileOffX + tileOffZ * TILES_PER_REGION
+	 */
+	static int tileIndexInRegion(int tileX, int tileZ) {
+		return (tileX & (TILES_PER_REGION - 1)) + (tileZ & (TILES_PER_REGION - 1)) * TILES_PER_REGION;
+	}
+
+	/**
+	 * Gets the index (as in tileIndexInRegion) of the tile containing a chunk, from the chunk's index in the region header
+	 */
+	static int tileIndexOfChunk(int chunkIndex) {
+		int chunksPerTile = 32 / TILES_PER_REGION;
+		return (chunkIndex & 31) / chunksPerTile + (chunkIndex >> 5) / chunksPerTile * TILES_PER_REGION;
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, pos);
+			if (read < 0) {
+				return false;
+			}
+			pos += read;
+		}
+		return true;
+	}
+
+	private static NbtCompound decompress(byte[] payload) throws IOException {
+		InputStream data = new ByteArrayInputStream(payload, 1, payload.length - 1);
+		switch (payload[0]) {
+			case 1:
+				data = new GZIPInputStream(data);
+				break;
+			case 2:
+				data = new InflaterInputStream(data);
+				break;
+			case 3:
+				break;
+			default:
+				throw new IOException("Unknown chunk compression type " + payload[0]);
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(data))) {
+			return NbtIo.read(input);
+		}
+	}
+
+	/**
+	 * Returns true if any chunk in the given square of chunks exists; the rows must have been decoded
+	 */
+	public boolean hasAnyChunk(int chunkOriginX, int chunkOriginZ, int chunkSize) {
+		for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
+			for (int chunkOffZ = 0; chunkOffZ < chunkSize; chunkOffZ++) {
+				if (getChunkView(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ) != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Chunk getChunkView(int x, int z) {
+		if ((x >> 5) != regionX || (z >> 5) != regionZ) {
+			return fallback.getChunkView(x, z);
+		}
+		if (world.isChunkLoaded(x, z)) {
+			return world.getChunk(x, z);
+		}
+		return chunks[(x & 31) + ((z & 31) << 5)];
+	}
+}
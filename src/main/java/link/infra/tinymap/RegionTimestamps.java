@@ -0,0 +1,78 @@
+package link.infra.tinymap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Tracks when the chunks of each tile were last saved, from the per-chunk timestamps in region file headers, so stored
+ * tiles can stay valid until their chunks change; regions are only re-read when their file changes
+ */
+class RegionTimestamps {
+	private final File regionFolder;
+	// Guarded by itself
+	private final Long2ObjectMap<Region> regions = new Long2ObjectOpenHashMap<>();
+
+	RegionTimestamps(File regionFolder) {
+		this.regionFolder = regionFolder;
+	}
+
+	private static final class Region {
+		final File file;
+		// Guarded by this
+		long lastModified = -1;
+		final long[] tileSaveTimes = new long[RegionChunks.TILES_PER_REGION * RegionChunks.TILES_PER_REGION];
+
+		Region(File file) {
+			this.file = file;
+		}
+
+		synchronized long getTileSaveTime(int tileIndex) throws IOException {
+			long modified = file.lastModified();
+			if (modified == 0) {
+				// The region doesn't exist (any more), so nothing stored for it is valid
+				return Long.MAX_VALUE;
+			}
+			if (modified != lastModified) {
+				int[] timestamps;
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					timestamps = RegionChunks.readTimestamps(channel);
+				}
+				Arrays.fill(tileSaveTimes, 0);
+				for (int i = 0; i < RegionChunks.CHUNKS_PER_REGION; i++) {
+					int tile = RegionChunks.tileIndexOfChunk(i);
+					// Timestamps are in seconds, so round up to be sure a tile rendered in the same second is stale
+					long saveTime = ((timestamps[i] & 0xFFFFFFFFL) + 1) * 1000;
+					tileSaveTimes[tile] = Math.max(tileSaveTimes[tile], saveTime);
+				}
+				lastModified = modified;
+			}
+			return tileSaveTimes[tileIndex];
+		}
+	}
+
+	/**
+	 * Gets the time (in milliseconds) by which every saved chunk in a zoom level 0 tile was saved; tiles rendered before
+	 * this are out of date
+	 */
+	public long getTileSaveTime(int tileX, int tileZ) throws IOException {
+		int regionX = TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_REGION_SHIFT);
+		int regionZ = TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_REGION_SHIFT);
+		long pos = ChunkPos.toLong(regionX, regionZ);
+		Region region;
+		synchronized (regions) {
+			region = regions.get(pos);
+			if (region == null) {
+				region = new Region(new File(regionFolder, "r." + regionX + "." + regionZ + ".mca"));
+				regions.put(pos, region);
+			}
+		}
+		return region.getTileSaveTime(RegionChunks.tileIndexInRegion(tileX, tileZ));
+	}
+}
@@ -0,0 +1,50 @@
+package link.infra.tinymap;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
+import net.minecraft.command.argument.DimensionArgumentType;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.LiteralText;
+
+import java.util.function.Supplier;
+
+/**
+ * /tinymap render &lt;dimension&gt; - renders a whole dimension into the tile store ahead of time
+ */
+class RenderCommand {
+	private static final SimpleCommandExceptionType NOT_STARTED = new SimpleCommandExceptionType(new LiteralText("TinyMap hasn't started yet"));
+	private static final SimpleCommandExceptionType UNKNOWN_WORLD = new SimpleCommandExceptionType(new LiteralText("That dimension isn't loaded"));
+	private static final SimpleCommandExceptionType NO_REGIONS = new SimpleCommandExceptionType(new LiteralText("That dimension has no saved regions to render"));
+	private static final SimpleCommandExceptionType STORE_DISABLED = new SimpleCommandExceptionType(new LiteralText("The tile store is disabled (tile_cache_max_age is 0), so there is nowhere to keep pre-rendered tiles"));
+	private static final SimpleCommandExceptionType ALREADY_RUNNING = new SimpleCommandExceptionType(new LiteralText("A full render is already running"));
+
+	static void register(CommandDispatcher<ServerCommandSource> dispatcher, Supplier<TileGenerator> tileGenerator) {
+		dispatcher.register(CommandManager.literal("tinymap")
+			.requires(source -> source.hasPermissionLevel(2))
+			.then(CommandManager.literal("render")
+				.then(CommandManager.argument("dimension", DimensionArgumentType.dimension())
+					.executes(ctx -> {
+						TileGenerator generator = tileGenerator.get();
+						if (generator == null) {
+							throw NOT_STARTED.create();
+						}
+						ServerWorld world = DimensionArgumentType.getDimensionArgument(ctx, "dimension");
+						switch (generator.startFullRender(world)) {
+							case UNKNOWN_WORLD:
+								throw UNKNOWN_WORLD.create();
+							case NO_REGIONS:
+								throw NO_REGIONS.create();
+							case STORE_DISABLED:
+								throw STORE_DISABLED.create();
+							case ALREADY_RUNNING:
+								throw ALREADY_RUNNING.create();
+						}
+						ctx.getSource().sendFeedback(new LiteralText("Rendering " + world.getRegistryKey().getValue() +
+							" in the background; progress is logged to the server console"), true);
+						return Command.SINGLE_SUCCESS;
+					}))));
+	}
+}
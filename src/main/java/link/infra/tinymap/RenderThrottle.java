@@ -0,0 +1,77 @@
+package link.infra.tinymap;
+
+/**
+ * Limits how many tiles can be rendered at once, based on how long recent server ticks have taken
+ * The limit is halved whenever the average tick time goes over the maximum MSPT (but always allows one render, so cold
+ * tiles still appear on a busy server), and grows back one render at a time while it stays under the target MSPT;
+ * background work only runs when the limit is fully open
+ */
+class RenderThrottle {
+	private final int maxConcurrency;
+	private final float targetMspt;
+	private final float maxMspt;
+
+	private int limit;
+	private int active = 0;
+
+	RenderThrottle(int maxConcurrency, float targetMspt, float maxMspt) {
+		this.maxConcurrency = maxConcurrency;
+		this.targetMspt = targetMspt;
+		this.maxMspt = maxMspt;
+		this.limit = maxConcurrency;
+	}
+
+	/**
+	 * Thrown when a render can't start as the server is too busy, so the client can retry later
+	 */
+	static class ThrottledException extends RuntimeException {
+		ThrottledException() {
+			super("Tile rendering is throttled due to high server tick times");
+		}
+	}
+
+	int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	synchronized void onTickTime(float mspt) {
+		int oldLimit = limit;
+		if (mspt > maxMspt) {
+			limit = Math.max(1, limit / 2);
+		} else if (mspt < targetMspt && limit < maxConcurrency) {
+			limit++;
+		}
+		if (limit > oldLimit) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Starts a render if the limit allows it, without waiting - request threads are shared with serving stored tiles, so
+	 * they shouldn't be held up waiting for a render slot
+	 */
+	synchronized boolean tryAcquire() {
+		if (active >= limit) {
+			return false;
+		}
+		active++;
+		return true;
+	}
+
+	synchronized void release() {
+		active--;
+	}
+
+	synchronized boolean isUnconstrained() {
+		return limit == maxConcurrency;
+	}
+
+	/**
+	 * Waits until the server has spare time for background work
+	 */
+	synchronized void awaitBackground() throws InterruptedException {
+		while (limit < maxConcurrency) {
+			wait();
+		}
+	}
+}
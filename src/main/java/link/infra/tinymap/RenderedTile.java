@@ -0,0 +1,16 @@
+package link.infra.tinymap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded tile, and the time its chunks were read for rendering
+ */
+class RenderedTile {
+	final ByteBuffer data;
+	final long renderTime;
+
+	RenderedTile(ByteBuffer data, long renderTime) {
+		this.data = data;
+		this.renderTime = renderTime;
+	}
+}
@@ -0,0 +1,16 @@
+package link.infra.tinymap;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream that exposes its buffer, so the written data can be used without copying it
+ */
+class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+	ReusableByteArrayOutputStream() {
+		super(64 * 1024);
+	}
+
+	byte[] getBuffer() {
+		return buf;
+	}
+}
@@ -1,5 +1,6 @@
 package link.infra.tinymap;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.MapColor;
@@ -14,33 +15,116 @@ import net.minecraft.world.Heightmap;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.chunk.WorldChunk;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
-import java.awt.image.DirectColorModel;
-import java.awt.image.Raster;
-import java.io.ByteArrayOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
 import java.io.IOException;
-import java.util.WeakHashMap;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+public class TileGenerator implements AutoCloseable {
+	private static final Logger LOGGER = LogManager.getLogger();
 
-public class TileGenerator {
 	private final MinecraftServer server;
-
-	public TileGenerator(MinecraftServer server) {
+	private final long tileCacheMaxAgeMillis;
+	private final RenderThrottle renderThrottle;
+
+	// World name -> context, so each request only needs a single lookup
+	private final Map<String, WorldContext> worlds = new ConcurrentHashMap<>();
+	// World -> context (worlds don't override equals, so this is by identity), so chunk events and commands don't need
+	// to build the world's name
+	private final Map<ServerWorld, WorldContext> worldContexts = new ConcurrentHashMap<>();
+	private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "TinyMap tile compaction");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// Compaction is deferred until the server isn't struggling to keep up
+	private final Executor backgroundExecutor = task -> compactionExecutor.execute(() -> {
+		try {
+			this.renderThrottle.awaitBackground();
+		} catch (InterruptedException e) {
+			return;
+		}
+		task.run();
+	});
+
+	private final ExecutorService preRenderExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "TinyMap pre-render");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicBoolean preRendering = new AtomicBoolean(false);
+	private final ForkJoinPool renderPool;
+	// Pre-rendering decodes whole strips of chunks at once, so it gets its own smaller pool rather than crowding out
+	// tiles being rendered for requests
+	private final ForkJoinPool decodePool;
+
+	public TileGenerator(MinecraftServer server, long tileCacheMaxAgeMillis, RenderThrottle renderThrottle) {
 		this.server = server;
-	}
+		this.tileCacheMaxAgeMillis = tileCacheMaxAgeMillis;
+		this.renderThrottle = renderThrottle;
+		this.renderPool = new ForkJoinPool(renderThrottle.getMaxConcurrency(), pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("TinyMap render " + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+		this.decodePool = new ForkJoinPool(Math.max(1, renderThrottle.getMaxConcurrency() / 2), pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("TinyMap pre-render decode " + thread.getPoolIndex());
+			return thread;
+		}, null, false);
 
-	private ServerWorld getWorldForName(String worldName) {
 		for (ServerWorld world : server.getWorlds()) {
-			if (world.getRegistryKey().getValue().toString().equals(worldName)) {
-				return world;
-			}
+			onWorldLoad(world);
+		}
+	}
+
+	public void onWorldLoad(ServerWorld world) {
+		WorldContext context = new WorldContext(server, world, tileCacheMaxAgeMillis, backgroundExecutor);
+		worldContexts.put(world, context);
+		WorldContext old = worlds.put(context.name, context);
+		if (old != null) {
+			worldContexts.remove(old.world, old);
+			old.retire();
+		}
+	}
+
+	public void onWorldUnload(ServerWorld world) {
+		WorldContext context = worldContexts.remove(world);
+		if (context != null && worlds.remove(context.name, context)) {
+			context.retire();
+		}
+	}
+
+	public void onChunkLoad(ServerWorld world, WorldChunk chunk) {
+		WorldContext context = worldContexts.get(world);
+		if (context != null) {
+			context.manifest.onChunkLoad(chunk.getPos().x, chunk.getPos().z);
 		}
-		return null;
 	}
 
-	// TODO: run datafixers
+	public void onChunkUnload(ServerWorld world, WorldChunk chunk) {
+		WorldContext context = worldContexts.get(world);
+		if (context != null) {
+			context.manifest.onChunkUnload(chunk.getPos().x, chunk.getPos().z);
+		}
+	}
 
 	// TODO: check if chunk region check shows too many chunks?
 	public static final int TILE_SIZE = 256;
@@ -55,122 +139,358 @@ public class TileGenerator {
 		}
 	}
 
-	private static final WeakHashMap<ServerWorld, BlockDigger> diggers = new WeakHashMap<>();
+	/**
+	 * Gets the JSON manifest of tiles that exist in a world at the given zoom level, or null if there isn't one
+	 */
+	public String getManifest(String worldName, int zoom) throws IOException {
+		WorldContext context = worlds.get(worldName);
+		if (context == null || zoom != 0) {
+			return null;
+		}
+		return context.manifest.toJson();
+	}
 
-	public byte[] getTile(String worldName, int x, int z, int zoom) throws IOException {
-		ServerWorld world = getWorldForName(worldName);
-		if (world == null) {
+	/**
+	 * Gets the encoded PNG for a tile and when it was rendered, either from the tile store or by rendering it
+	 * Returns null if there is nothing to render in this tile, and throws ThrottledException if it needs rendering but the
+	 * server is too busy
+	 */
+	public RenderedTile getTile(String worldName, int x, int z, int zoom) throws IOException {
+		WorldContext context = worlds.get(worldName);
+		// The world may be unloaded while the tile is being served, so hold on to its tile stores until it's done
+		if (context == null || !context.acquire()) {
 			return null;
 		}
+		try {
+			return getTile(context, x, z, zoom);
+		} finally {
+			context.release();
+		}
+	}
+
+	private RenderedTile getTile(WorldContext context, int x, int z, int zoom) throws IOException {
+		ServerWorld world = context.world;
 
 		if (zoom > 0) {
 			return null;
 		}
 		int zoomShift = -zoom;
 
-		BlockDigger.Session digger = diggers.computeIfAbsent(world, _world -> new BlockDigger(server, _world)).new Session();
+		TileStore store = null;
+		try {
+			store = context.getTileStore(zoom);
+		} catch (UncheckedIOException e) {
+			LOGGER.error("Failed to open tile store for " + context.name, e.getCause());
+		}
+		if (store != null) {
+			RenderedTile stored = store.get(x, z);
+			if (stored != null && isStoredTileValid(context, x, z, zoomShift, stored.renderTime)) {
+				context.tilesFromStore.incrementAndGet();
+				return stored;
+			}
+		}
 
-		if (digger.testTileExists(x, z, zoomShift)) {
-			int[] colors = getColorsFromWorld(world, x, z, zoomShift, digger);
-			DataBufferInt buf = new DataBufferInt(colors, colors.length);
-			// ABGR -> RGBA
-			int[] masks = new int[]{0xff, 0xff00, 0xff0000, 0xff000000};
-			BufferedImage bufImg = new BufferedImage(new DirectColorModel(32, masks[0], masks[1], masks[2], masks[3]),
-				Raster.createPackedRaster(buf, TILE_SIZE, TILE_SIZE, TILE_SIZE, masks, null), false, null);
+		long renderTime = System.currentTimeMillis();
+		BlockDigger.Session digger = context.digger.getSession();
+		if (!digger.testTileExists(x, z, zoomShift)) {
+			context.tilesEmpty.incrementAndGet();
+			return null;
+		}
 
-			// TODO: experiment with writing PNG manually?
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ImageIO.write(bufImg, "png", baos);
+		if (!renderThrottle.tryAcquire()) {
+			throw new RenderThrottle.ThrottledException();
+		}
+		try {
+			RenderBuffers buffers = RENDER_BUFFERS.get();
+			// Only split the tile up while the server has time to spare
+			renderTile(world, x, z, zoomShift, digger, buffers, renderThrottle.isUnconstrained());
+			context.tilesRendered.incrementAndGet();
+
+			if (store != null) {
+				store.put(x, z, renderTime, buffers.encoded.getBuffer(), 0, buffers.encoded.size());
+			}
+			// Only valid until the next tile is rendered on this thread, which is fine as the response is written first
+			return new RenderedTile(ByteBuffer.wrap(buffers.encoded.getBuffer(), 0, buffers.encoded.size()), renderTime);
+		} finally {
+			renderThrottle.release();
+		}
+	}
 
-			return baos.toByteArray();
-		} else {
-			return null;
+	/**
+	 * Stored tiles are valid until any of their chunks are saved again; loaded chunks can change without being saved, so
+	 * tiles with loaded chunks are also only valid for the configured maximum age
+	 * Zoomed out tiles are checked against each zoom level 0 tile they cover
+	 */
+	private boolean isStoredTileValid(WorldContext context, int x, int z, int zoomShift, long renderTime) throws IOException {
+		boolean expired = System.currentTimeMillis() - renderTime > tileCacheMaxAgeMillis;
+		int size = 1 << zoomShift;
+		for (int offX = 0; offX < size; offX++) {
+			for (int offZ = 0; offZ < size; offZ++) {
+				int tileX = (x << zoomShift) + offX;
+				int tileZ = (z << zoomShift) + offZ;
+				if (renderTime < context.regionTimestamps.getTileSaveTime(tileX, tileZ)) {
+					return false;
+				}
+				if (expired && context.manifest.hasLoadedChunks(tileX, tileZ)) {
+					return false;
+				}
+			}
 		}
+		return true;
 	}
 
-	// TODO: zoomed out
-	private int[] getColorsFromWorld(ServerWorld world, int tileX, int tileZ, int zoomShift, BlockDigger.Session digger) {
-		BlockSearcher searcher = new BlockSearcher(world);
+	/**
+	 * Renders a tile and encodes it as a PNG into buffers.encoded
+	 */
+	private void renderTile(ServerWorld world, int x, int z, int zoomShift, ChunkSource chunks, RenderBuffers buffers, boolean parallel) throws IOException {
+		getColorsFromWorld(world, x, z, zoomShift, chunks, buffers.colors, parallel);
+		buffers.encode();
+	}
 
+	/**
+	 * Renders every tile covered by a region into the tile store, reading the region file in one sequential pass
+	 * Returns the number of tiles rendered
+	 */
+	private int renderRegion(WorldContext context, int regionX, int regionZ) throws IOException {
+		TileStore store = context.getTileStore(0);
+		if (store == null) {
+			return 0;
+		}
+		ServerWorld world = context.world;
+		long renderTime = System.currentTimeMillis();
+		RegionChunks chunks = RegionChunks.read(context.digger, world, regionX, regionZ);
+		RenderBuffers buffers = RENDER_BUFFERS.get();
+
+		int chunkSize = rightShiftButReversible(1, TILE_TO_CHUNK_SHIFT);
+		int rendered = 0;
+		for (int tileOffZ = 0; tileOffZ < RegionChunks.TILES_PER_REGION; tileOffZ++) {
+			// Only decode one row of tiles at a time, to limit how many decoded chunks are held in memory
+			chunks.decodeRows(tileOffZ * chunkSize, (tileOffZ + 1) * chunkSize, decodePool);
+			for (int tileOffX = 0; tileOffX < RegionChunks.TILES_PER_REGION; tileOffX++) {
+				int tileX = rightShiftButReversible(regionX, -TILE_TO_REGION_SHIFT) + tileOffX;
+				int tileZ = rightShiftButReversible(regionZ, -TILE_TO_REGION_SHIFT) + tileOffZ;
+				if (!chunks.hasAnyChunk(rightShiftButReversible(tileX, TILE_TO_CHUNK_SHIFT), rightShiftButReversible(tileZ, TILE_TO_CHUNK_SHIFT), chunkSize)) {
+					continue;
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException();
+				}
+				// The chunks are already decoded in parallel, so there's little to gain from splitting the tile
+				renderTile(world, tileX, tileZ, 0, chunks, buffers, false);
+				store.put(tileX, tileZ, renderTime, buffers.encoded.getBuffer(), 0, buffers.encoded.size());
+				context.tilesRendered.incrementAndGet();
+				rendered++;
+			}
+		}
+		return rendered;
+	}
+
+	enum FullRenderResult {
+		STARTED,
+		UNKNOWN_WORLD,
+		NO_REGIONS,
+		STORE_DISABLED,
+		ALREADY_RUNNING
+	}
+
+	/**
+	 * Starts rendering every region of a world into the tile store in the background, one region at a time; progress is
+	 * logged rather than reported back
+	 */
+	public FullRenderResult startFullRender(ServerWorld world) {
+		WorldContext context = worldContexts.get(world);
+		if (context == null) {
+			return FullRenderResult.UNKNOWN_WORLD;
+		}
+		if (tileCacheMaxAgeMillis <= 0) {
+			return FullRenderResult.STORE_DISABLED;
+		}
+		Long2ObjectMap<File> regionFiles = RegionChunks.listRegionFiles(context.digger.getRegionFolder());
+		if (regionFiles.isEmpty()) {
+			return FullRenderResult.NO_REGIONS;
+		}
+		if (!preRendering.compareAndSet(false, true)) {
+			return FullRenderResult.ALREADY_RUNNING;
+		}
+		if (!context.acquire()) {
+			preRendering.set(false);
+			return FullRenderResult.UNKNOWN_WORLD;
+		}
+		String worldName = context.name;
+		LOGGER.info("Rendering {} regions of {}", regionFiles.size(), worldName);
+		preRenderExecutor.execute(() -> {
+			int regions = 0;
+			int tiles = 0;
+			try {
+				for (Long2ObjectMap.Entry<File> regionEntry : regionFiles.long2ObjectEntrySet()) {
+					long pos = regionEntry.getLongKey();
+					renderThrottle.awaitBackground();
+					if (context.isRetired()) {
+						LOGGER.info("Stopped rendering {} as it was unloaded", worldName);
+						break;
+					}
+					// Stop as soon as the generator is closed, rather than reopening the tile store to render the next region
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					try {
+						tiles += renderRegion(context, ChunkPos.getPackedX(pos), ChunkPos.getPackedZ(pos));
+					} catch (InterruptedIOException e) {
+						throw new InterruptedException();
+					} catch (IOException e) {
+						LOGGER.error("Failed to render region " + regionEntry.getValue(), e);
+					}
+					if (++regions % 16 == 0) {
+						LOGGER.info("Rendered {}/{} regions of {}", regions, regionFiles.size(), worldName);
+					}
+				}
+				LOGGER.info("Finished rendering {} tiles from {} regions of {}", tiles, regions, worldName);
+			} catch (InterruptedException e) {
+				LOGGER.info("Rendering of {} was interrupted", worldName);
+			} finally {
+				context.release();
+				preRendering.set(false);
+			}
+		});
+		return FullRenderResult.STARTED;
+	}
+
+	/**
+	 * Buffers reused between renders on the same thread, so that rendering and encoding a tile doesn't allocate image-sized
+	 * buffers; encoding allocates nothing once warmed up, but splitting a tile across the render pool still creates a
+	 * task for each chunk column
+	 */
+	static final class RenderBuffers {
+		final int[] colors = new int[TILE_SIZE * TILE_SIZE];
+		final PngEncoder pngEncoder = new PngEncoder();
+		final ReusableByteArrayOutputStream encoded = new ReusableByteArrayOutputStream();
+
+		/**
+		 * Encodes the rendered colors as a PNG into encoded
+		 */
+		void encode() {
+			encoded.reset();
+			pngEncoder.encode(colors, TILE_SIZE, TILE_SIZE, encoded);
+		}
+	}
+
+	private static final ThreadLocal<RenderBuffers> RENDER_BUFFERS = ThreadLocal.withInitial(RenderBuffers::new);
+
+	/**
+	 * Search state for rendering a single column of chunks, reused between renders on the same thread
+	 */
+	private static final class ColumnBuffers {
+		final int[] lastHeights = new int[16];
+		final BlockSearcher searcher = new BlockSearcher();
+	}
+
+	private static final ThreadLocal<ColumnBuffers> COLUMN_BUFFERS = ThreadLocal.withInitial(ColumnBuffers::new);
+
+	// TODO: zoomed out
+	private void getColorsFromWorld(ServerWorld world, int tileX, int tileZ, int zoomShift, ChunkSource chunks, int[] colors, boolean parallel) throws IOException {
 		int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT - zoomShift);
 		int chunkOriginX = TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_CHUNK_SHIFT - zoomShift);
 		int chunkOriginZ = TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_CHUNK_SHIFT - zoomShift);
-		int[] colors = new int[TILE_SIZE * TILE_SIZE];
+		Arrays.fill(colors, 0);
 		boolean hasCeiling = world.getDimension().hasCeiling();
 
-		for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
-			Chunk chunkBefore = digger.getChunkView(chunkOriginX + chunkOffX, chunkOriginZ - 1);
-			ChunkPos chunkPosBefore = new ChunkPos(chunkOriginX + chunkOffX, chunkOriginZ - 1);
-			Heightmap chunkBeforeHeightmap = null;
-			if (chunkBefore != null) {
-				chunkBeforeHeightmap = chunkBefore.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+		if (parallel) {
+			// Shading only depends on the block to the north, so each column of chunks (including the chunk north of the
+			// tile, for the first row) can be rendered independently
+			try {
+				renderPool.submit(() -> IntStream.range(0, chunkSize).parallel().forEach(chunkOffX ->
+					renderChunkColumn(world, chunks, chunkOriginX, chunkOriginZ, chunkOffX, chunkSize, hasCeiling, colors))).get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to render tile " + tileX + ", " + tileZ, e.getCause());
+			}
+		} else {
+			for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
+				renderChunkColumn(world, chunks, chunkOriginX, chunkOriginZ, chunkOffX, chunkSize, hasCeiling, colors);
 			}
+		}
+	}
 
-			int[] lastHeights = new int[chunkSize];
+	private void renderChunkColumn(ServerWorld world, ChunkSource chunks, int chunkOriginX, int chunkOriginZ, int chunkOffX, int chunkSize, boolean hasCeiling, int[] colors) {
+		ColumnBuffers buffers = COLUMN_BUFFERS.get();
+		BlockSearcher searcher = buffers.searcher;
+		searcher.world = world;
+		int[] lastHeights = buffers.lastHeights;
+
+		int chunkStartX = (chunkOriginX + chunkOffX) << 4;
+		Chunk chunkBefore = chunks.getChunkView(chunkOriginX + chunkOffX, chunkOriginZ - 1);
+		int chunkBeforeStartZ = (chunkOriginZ - 1) << 4;
+		Heightmap chunkBeforeHeightmap = null;
+		if (chunkBefore != null) {
+			chunkBeforeHeightmap = chunkBefore.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+		}
 
-			for (int chunkOffZ = 0; chunkOffZ < chunkSize; chunkOffZ++) {
-				Chunk chunk = digger.getChunkView(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ);
-				ChunkPos chunkPos = new ChunkPos(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ);
-				if (chunk == null || !chunk.getStatus().isAtLeast(ChunkStatus.FULL)) {
-					continue;
+		Arrays.fill(lastHeights, 0);
+
+		for (int chunkOffZ = 0; chunkOffZ < chunkSize; chunkOffZ++) {
+			Chunk chunk = chunks.getChunkView(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ);
+			int chunkStartZ = (chunkOriginZ + chunkOffZ) << 4;
+			if (chunk == null || !chunk.getStatus().isAtLeast(ChunkStatus.FULL)) {
+				continue;
+			}
+			Heightmap chunkHeightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+
+			for (int xOff = 0; xOff < 16; xOff++) {
+				// TODO: check isEmpty???
+				if (chunkBefore != null && chunkOffZ == 0) {
+					// Get first line, to calculate proper shade
+					if (hasCeiling) {
+						searcher.searchForBlockCeil(chunkBefore, xOff, 15, chunkStartX, chunkBeforeStartZ);
+					} else {
+						searcher.searchForBlock(chunkBefore, chunkBeforeHeightmap, xOff, 15, chunkStartX, chunkBeforeStartZ);
+					}
+					lastHeights[xOff] = searcher.height;
 				}
-				Heightmap chunkHeightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
-
-				for (int xOff = 0; xOff < 16; xOff++) {
-					// TODO: check isEmpty???
-					if (chunkBefore != null && chunkOffZ == 0) {
-						// Get first line, to calculate proper shade
-						if (hasCeiling) {
-							searcher.searchForBlockCeil(chunkBefore, xOff, 15, chunkPosBefore.getStartX(), chunkPosBefore.getStartZ());
-						} else {
-							searcher.searchForBlock(chunkBefore, chunkBeforeHeightmap, xOff, 15, chunkPosBefore.getStartX(), chunkPosBefore.getStartZ());
-						}
-						lastHeights[xOff] = searcher.height;
+
+				for (int zOff = 0; zOff < 16; zOff++) {
+					if (hasCeiling) {
+						searcher.searchForBlockCeil(chunk, xOff, zOff, chunkStartX, chunkStartZ);
+					} else {
+						searcher.searchForBlock(chunk, chunkHeightmap, xOff, zOff, chunkStartX, chunkStartZ);
 					}
 
-					for (int zOff = 0; zOff < 16; zOff++) {
-						if (hasCeiling) {
-							searcher.searchForBlockCeil(chunk, xOff, zOff, chunkPos.getStartX(), chunkPos.getStartZ());
-						} else {
-							searcher.searchForBlock(chunk, chunkHeightmap, xOff, zOff, chunkPos.getStartX(), chunkPos.getStartZ());
-						}
+					if (searcher.height > 0 && !searcher.blockState.getFluidState().isEmpty()) {
+						searcher.calcWaterDepth(chunk);
+					}
 
-						if (searcher.height > 0 && !searcher.blockState.getFluidState().isEmpty()) {
-							searcher.calcWaterDepth(chunk);
-						}
+					MapColor matColor = searcher.blockState.getTopMaterialColor(world, searcher.pos);
+					int shade;
 
-						MapColor matColor = searcher.blockState.getTopMaterialColor(world, searcher.pos);
-						int shade;
-
-						if (matColor == MapColor.WATER_BLUE) {
-							double shadeTest = (double) searcher.waterDepth * 0.1D + (double) (xOff + zOff & 1) * 0.2D;
-							shade = 1;
-							if (shadeTest < 0.5D) {
-								shade = 2;
-							}
-
-							if (shadeTest > 0.9D) {
-								shade = 0;
-							}
-						} else {
-							double shadeTest = (searcher.height - lastHeights[xOff]) * 4.0D / 5.0D + ((double) (xOff + zOff & 1) - 0.5D) * 0.4D;
-							shade = 1;
-							if (shadeTest > 0.6D) {
-								shade = 2;
-							}
-							if (shadeTest < -0.6D) {
-								shade = 0;
-							}
+					if (matColor == MapColor.WATER_BLUE) {
+						double shadeTest = (double) searcher.waterDepth * 0.1D + (double) (xOff + zOff & 1) * 0.2D;
+						shade = 1;
+						if (shadeTest < 0.5D) {
+							shade = 2;
 						}
 
-						lastHeights[xOff] = searcher.height;
-						colors[(zOff + (chunkOffZ * 16)) * TILE_SIZE + (xOff + (chunkOffX * 16))] = getRenderColor(matColor, shade);
+						if (shadeTest > 0.9D) {
+							shade = 0;
+						}
+					} else {
+						double shadeTest = (searcher.height - lastHeights[xOff]) * 4.0D / 5.0D + ((double) (xOff + zOff & 1) - 0.5D) * 0.4D;
+						shade = 1;
+						if (shadeTest > 0.6D) {
+							shade = 2;
+						}
+						if (shadeTest < -0.6D) {
+							shade = 0;
+						}
 					}
+
+					lastHeights[xOff] = searcher.height;
+					colors[(zOff + (chunkOffZ * 16)) * TILE_SIZE + (xOff + (chunkOffX * 16))] = getRenderColor(matColor, shade);
 				}
 			}
 		}
 
-		return colors;
+		// Don't keep the world alive through the thread-local searcher
+		searcher.world = null;
 	}
 
 	private static final class BlockSearcher {
@@ -179,11 +499,7 @@ public class TileGenerator {
 		public BlockState blockState;
 		public int height;
 		public int waterDepth;
-		private final ServerWorld world;
-
-		public BlockSearcher(ServerWorld world) {
-			this.world = world;
-		}
+		private ServerWorld world;
 
 		void searchForBlock(BlockView chunk, Heightmap surfaceHeightmap, int x, int z, int chunkStartX, int chunkStartZ) {
 			height = surfaceHeightmap.get(x & 15, z & 15);
@@ -261,6 +577,20 @@ public class TileGenerator {
 		return -16777216 | l << 16 | k << 8 | j;
 	}
 
+	@Override
+	public void close() {
+		preRenderExecutor.shutdownNow();
+		renderPool.shutdownNow();
+		decodePool.shutdownNow();
+		compactionExecutor.shutdownNow();
+		for (WorldContext context : worlds.values()) {
+			if (worlds.remove(context.name, context)) {
+				worldContexts.remove(context.world, context);
+				context.retire();
+			}
+		}
+	}
+
 	// TODO: is this needed?
 	private static BlockState getFluidStateIfVisible(World world, BlockState state, BlockPos pos) {
 		FluidState fluidState = state.getFluidState();
@@ -0,0 +1,158 @@
+package link.infra.tinymap;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.ChunkPos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Lists which tiles of a dimension have anything to render, so the web map can avoid requesting empty tiles
+ * Built from the chunk locations in each region file's header; regions are only re-read when their file changes
+ * Loaded chunks are included too, as they may not have been saved to a region file yet
+ */
+class TileManifest {
+	private final File regionFolder;
+	// Guards the region scan and cached JSON; only taken by manifest requests, never by the server thread, so reading
+	// region headers can't hold up chunk loading
+	private final Object scanLock = new Object();
+	// Region pos -> (last modified time << 8) | bitmap of tiles in the region that have chunks
+	private final Long2LongMap regionBitmaps = new Long2LongOpenHashMap();
+	private String cachedJson = null;
+	// Every loaded chunk, and tile pos -> number of loaded chunks in the tile; guarded by loadedChunks, which is only
+	// ever held briefly
+	private final LongSet loadedChunks = new LongOpenHashSet();
+	private final Long2IntMap loadedTiles = new Long2IntOpenHashMap();
+	// Set when a tile gains its first loaded chunk or loses its last one
+	private volatile boolean loadedTilesChanged;
+
+	TileManifest(File regionFolder) {
+		this.regionFolder = regionFolder;
+	}
+
+	private static long tileOf(int chunkX, int chunkZ) {
+		return ChunkPos.toLong(TileGenerator.rightShiftButReversible(chunkX, -TileGenerator.TILE_TO_CHUNK_SHIFT),
+			TileGenerator.rightShiftButReversible(chunkZ, -TileGenerator.TILE_TO_CHUNK_SHIFT));
+	}
+
+	public void onChunkLoad(int chunkX, int chunkZ) {
+		synchronized (loadedChunks) {
+			if (loadedChunks.add(ChunkPos.toLong(chunkX, chunkZ)) && loadedTiles.addTo(tileOf(chunkX, chunkZ), 1) == 0) {
+				loadedTilesChanged = true;
+			}
+		}
+	}
+
+	public void onChunkUnload(int chunkX, int chunkZ) {
+		synchronized (loadedChunks) {
+			if (loadedChunks.remove(ChunkPos.toLong(chunkX, chunkZ))) {
+				long tile = tileOf(chunkX, chunkZ);
+				if (loadedTiles.addTo(tile, -1) == 1) {
+					loadedTiles.remove(tile);
+					loadedTilesChanged = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether any chunks of a zoom level 0 tile are loaded, without touching the world, so it is safe to call
+	 * from web server threads
+	 */
+	public boolean hasLoadedChunks(int tileX, int tileZ) {
+		synchronized (loadedChunks) {
+			return loadedTiles.containsKey(ChunkPos.toLong(tileX, tileZ));
+		}
+	}
+
+	/**
+	 * Gets the manifest as JSON: {"regionShift": n, "regions": {"x,z": bitmap}}, where bit (tileOffX + tileOffZ * 2^n)
+	 * of a region's bitmap is set if that tile has any chunks
+	 */
+	public String toJson() throws IOException {
+		synchronized (scanLock) {
+			return scan();
+		}
+	}
+
+	private String scan() throws IOException {
+		Long2ObjectMap<File> regionFiles = RegionChunks.listRegionFiles(regionFolder);
+
+		boolean changed = regionFiles.size() != regionBitmaps.size();
+		Long2LongMap updated = new Long2LongOpenHashMap(regionFiles.size());
+		for (Long2ObjectMap.Entry<File> regionEntry : regionFiles.long2ObjectEntrySet()) {
+			long pos = regionEntry.getLongKey();
+			File regionFile = regionEntry.getValue();
+			long lastModified = regionFile.lastModified();
+			long entry = regionBitmaps.getOrDefault(pos, -1L);
+			if (entry == -1 || entry >>> 8 != lastModified) {
+				entry = (lastModified << 8) | readTileBitmap(regionFile);
+				changed = true;
+			}
+			updated.put(pos, entry);
+		}
+
+		if (changed || loadedTilesChanged || cachedJson == null) {
+			regionBitmaps.clear();
+			regionBitmaps.putAll(updated);
+
+			Long2IntMap bitmaps = new Long2IntOpenHashMap(regionBitmaps.size());
+			for (Long2LongMap.Entry entry : regionBitmaps.long2LongEntrySet()) {
+				bitmaps.put(entry.getLongKey(), (int) (entry.getLongValue() & 0xFF));
+			}
+			// Cleared before copying, so a change made while the JSON is built is picked up by the next request
+			loadedTilesChanged = false;
+			long[] tiles;
+			synchronized (loadedChunks) {
+				tiles = loadedTiles.keySet().toLongArray();
+			}
+			for (long tile : tiles) {
+				int tileX = ChunkPos.getPackedX(tile);
+				int tileZ = ChunkPos.getPackedZ(tile);
+				long region = ChunkPos.toLong(TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_REGION_SHIFT),
+					TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_REGION_SHIFT));
+				bitmaps.put(region, bitmaps.get(region) | 1 << RegionChunks.tileIndexInRegion(tileX, tileZ));
+			}
+
+			StringBuilder json = new StringBuilder("{\"regionShift\":").append(TileGenerator.TILE_TO_REGION_SHIFT).append(",\"regions\":{");
+			boolean first = true;
+			for (Long2IntMap.Entry entry : bitmaps.long2IntEntrySet()) {
+				int bitmap = entry.getIntValue();
+				if (bitmap == 0) {
+					continue;
+				}
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				long pos = entry.getLongKey();
+				json.append('"').append(ChunkPos.getPackedX(pos)).append(',').append(ChunkPos.getPackedZ(pos)).append("\":").append(bitmap);
+			}
+			cachedJson = json.append("}}").toString();
+		}
+		return cachedJson;
+	}
+
+	private static int readTileBitmap(File regionFile) throws IOException {
+		int[] locations;
+		try (FileChannel channel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ)) {
+			locations = RegionChunks.readLocations(channel);
+		}
+
+		int bitmap = 0;
+		for (int i = 0; i < RegionChunks.CHUNKS_PER_REGION; i++) {
+			if (locations[i] != 0) {
+				bitmap |= 1 << RegionChunks.tileIndexOfChunk(i);
+			}
+		}
+		return bitmap;
+	}
+}
@@ -0,0 +1,428 @@
+package link.infra.tinymap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores encoded tiles for one dimension and zoom level, packed into a single append-only file
+ * Each record is [x, z, render time, length, checksum, data]; newer records for the same tile supersede older ones, and
+ * the dead space is reclaimed by compacting the pack in the background
+ * Appends only hold the index lock to update the index, so reading stored tiles never waits for file writes
+ * Compaction writes the next generation of the pack to a new file (name.generation.pack), so a pack file is never
+ * replaced while it is open or mapped
+ */
+class TileStore implements Closeable {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+	// The checksum covers the rest of the header, and the data
+	private static final int CHECKSUMMED_HEADER_SIZE = RECORD_HEADER_SIZE - 4;
+	// Packs are mapped in segments of this size, which are never remapped; records never cross a segment boundary
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	// Don't bother compacting until there's at least this much dead space
+	private static final long COMPACT_MIN_DEAD_BYTES = 16 * 1024 * 1024;
+	// How long to wait before trying again after a compaction fails
+	private static final long COMPACT_RETRY_DELAY_MILLIS = 10 * 60 * 1000;
+
+	private final Path folder;
+	private final String name;
+	private final Executor compactionExecutor;
+
+	// Guards the index and the current pack; only held briefly when writing
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// Held while appending to the pack, and while compaction replaces it; the index and pack only change while this is held
+	private final Object appendLock = new Object();
+	private final Long2ObjectMap<Entry> index = new Long2ObjectOpenHashMap<>();
+	private Pack pack;
+	private long generation;
+	private long liveBytes = 0;
+	private long deadBytes = 0;
+	private volatile boolean closed = false;
+	private volatile boolean compacting = false;
+	private volatile long nextCompactionTime = 0;
+	// Guarded by appendLock, so storing a tile doesn't allocate a header
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+	private final CRC32 checksum = new CRC32();
+
+	private static final class Entry {
+		final long offset;
+		final int length;
+		final long renderTime;
+
+		Entry(long offset, int length, long renderTime) {
+			this.offset = offset;
+			this.length = length;
+			this.renderTime = renderTime;
+		}
+
+		long recordSize() {
+			return RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	/**
+	 * One generation of the pack file, mapped one fixed-size segment at a time as it grows
+	 */
+	private static final class Pack {
+		final Path file;
+		final FileChannel channel;
+		// Compaction output isn't mapped, as it is renamed once it has been written
+		private final boolean mapSegments;
+		// Copy-on-write, as compaction reads from the pack without holding the lock while tiles are being stored
+		private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+		long writePos = 0;
+
+		Pack(Path file, boolean mapSegments) throws IOException {
+			this.file = file;
+			this.mapSegments = mapSegments;
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (mapSegments) {
+				long segmentCount = (channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+				for (long i = 0; i < segmentCount; i++) {
+					addSegment();
+				}
+			}
+		}
+
+		long capacity() {
+			return (long) segments.size() * SEGMENT_SIZE;
+		}
+
+		private void addSegment() throws IOException {
+			long segmentEnd = capacity() + SEGMENT_SIZE;
+			if (channel.size() < segmentEnd) {
+				// Extend the file to cover the whole segment, so it can be mapped once rather than every time it grows
+				writeFully(channel, ByteBuffer.wrap(new byte[1]), segmentEnd - 1);
+			}
+			segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentEnd - SEGMENT_SIZE, SEGMENT_SIZE));
+		}
+
+		/**
+		 * Appends a record, returning the offset of its data
+		 */
+		long append(ByteBuffer header, ByteBuffer data) throws IOException {
+			int size = RECORD_HEADER_SIZE + data.remaining();
+			long pos = writePos;
+			if (pos / SEGMENT_SIZE != (pos + size - 1) / SEGMENT_SIZE) {
+				pos = (pos / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			}
+			while (mapSegments && capacity() < pos + size) {
+				addSegment();
+			}
+			// The OS can write these back in either order, so a record cut short by a crash is found by its checksum
+			writeFully(channel, data, pos + RECORD_HEADER_SIZE);
+			writeFully(channel, header, pos);
+			writePos = pos + size;
+			return pos + RECORD_HEADER_SIZE;
+		}
+
+		ByteBuffer slice(long offset, int length) {
+			ByteBuffer buf = segments.get((int) (offset / SEGMENT_SIZE)).duplicate();
+			int segmentOffset = (int) (offset % SEGMENT_SIZE);
+			buf.limit(segmentOffset + length);
+			buf.position(segmentOffset);
+			return buf.slice().asReadOnlyBuffer();
+		}
+
+		void close() throws IOException {
+			// Existing slices of the mapped segments stay valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	private TileStore(Path folder, String name, Executor compactionExecutor) {
+		this.folder = folder;
+		this.name = name;
+		this.compactionExecutor = compactionExecutor;
+	}
+
+	public static TileStore open(Path folder, String name, Executor compactionExecutor) throws IOException {
+		Files.createDirectories(folder);
+		TileStore store = new TileStore(folder, name, compactionExecutor);
+
+		store.generation = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, name + ".*.pack")) {
+			for (Path file : files) {
+				store.generation = Math.max(store.generation, store.parseGeneration(file));
+			}
+		}
+		store.deleteOldFiles();
+
+		store.pack = new Pack(store.packFile(store.generation), true);
+		store.loadIndex();
+		return store;
+	}
+
+	private Path packFile(long generation) {
+		return folder.resolve(name + "." + generation + ".pack");
+	}
+
+	private long parseGeneration(Path file) {
+		String fileName = file.getFileName().toString();
+		try {
+			return Long.parseLong(fileName.substring(name.length() + 1, fileName.length() - ".pack".length()));
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Deletes packs from previous generations, and compaction output that was never finished
+	 * Old packs can't be deleted on some platforms until their mappings are garbage collected, so this is also done on startup
+	 */
+	private void deleteOldFiles() throws IOException {
+		Path current = packFile(generation);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, name + ".*")) {
+			for (Path file : files) {
+				if (!file.equals(current)) {
+					try {
+						Files.deleteIfExists(file);
+					} catch (IOException e) {
+						LOGGER.debug("Couldn't delete old tile pack " + file + " yet", e);
+					}
+				}
+			}
+		}
+	}
+
+	private void loadIndex() throws IOException {
+		long end = pack.capacity();
+		long pos = 0;
+		while (pos + RECORD_HEADER_SIZE <= end) {
+			long segmentEnd = (pos / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			if (pos + RECORD_HEADER_SIZE > segmentEnd) {
+				pos = segmentEnd;
+				continue;
+			}
+			ByteBuffer header = pack.slice(pos, RECORD_HEADER_SIZE);
+			int x = header.getInt();
+			int z = header.getInt();
+			long renderTime = header.getLong();
+			int length = header.getInt();
+			int storedChecksum = header.getInt();
+			if (length <= 0 || renderTime <= 0 || pos + RECORD_HEADER_SIZE + length > segmentEnd ||
+				storedChecksum != checksumOf(pack, pos, length)) {
+				// Unused space at the end of a segment, or a record that was never completed
+				pos = segmentEnd;
+				continue;
+			}
+			putEntry(ChunkPos.toLong(x, z), new Entry(pos + RECORD_HEADER_SIZE, length, renderTime));
+			pos += RECORD_HEADER_SIZE + length;
+			pack.writePos = pos;
+		}
+	}
+
+	private int checksumOf(Pack pack, long pos, int length) {
+		checksum.reset();
+		checksum.update(pack.slice(pos, CHECKSUMMED_HEADER_SIZE));
+		checksum.update(pack.slice(pos + RECORD_HEADER_SIZE, length));
+		return (int) checksum.getValue();
+	}
+
+	private void putEntry(long key, Entry entry) {
+		Entry old = index.put(key, entry);
+		if (old != null) {
+			liveBytes -= old.recordSize();
+			deadBytes += old.recordSize();
+		}
+		liveBytes += entry.recordSize();
+	}
+
+	/**
+	 * Gets a stored tile, as a read-only view backed by the mapped pack file, or null if it isn't stored
+	 * The caller decides whether it is still up to date, from when it was rendered
+	 */
+	public RenderedTile get(int x, int z) {
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				return null;
+			}
+			Entry entry = index.get(ChunkPos.toLong(x, z));
+			if (entry == null) {
+				return null;
+			}
+			return new RenderedTile(pack.slice(entry.offset, entry.length), entry.renderTime);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores a tile, given the time its chunks were read for rendering
+	 */
+	public void put(int x, int z, long renderTime, byte[] data, int offset, int length) throws IOException {
+		if (RECORD_HEADER_SIZE + length > SEGMENT_SIZE) {
+			LOGGER.warn("Not storing tile {}, {} in {} as it is {} bytes, larger than a pack segment", x, z, name, length);
+			return;
+		}
+		boolean shouldCompact;
+		synchronized (appendLock) {
+			if (closed) {
+				return;
+			}
+			recordHeader.clear();
+			recordHeader.putInt(x).putInt(z).putLong(renderTime).putInt(length);
+			checksum.reset();
+			checksum.update(recordHeader.array(), 0, CHECKSUMMED_HEADER_SIZE);
+			checksum.update(data, offset, length);
+			recordHeader.putInt((int) checksum.getValue());
+			recordHeader.flip();
+			long dataOffset = pack.append(recordHeader, ByteBuffer.wrap(data, offset, length));
+
+			lock.writeLock().lock();
+			try {
+				putEntry(ChunkPos.toLong(x, z), new Entry(dataOffset, length, renderTime));
+				shouldCompact = !compacting && System.currentTimeMillis() >= nextCompactionTime &&
+					deadBytes > COMPACT_MIN_DEAD_BYTES && deadBytes > liveBytes;
+				if (shouldCompact) {
+					compacting = true;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		if (shouldCompact) {
+			compactionExecutor.execute(() -> {
+				try {
+					compact();
+				} catch (IOException e) {
+					LOGGER.error("Failed to compact tile pack " + name + ", retrying in " + (COMPACT_RETRY_DELAY_MILLIS / 60000) + " minutes", e);
+					nextCompactionTime = System.currentTimeMillis() + COMPACT_RETRY_DELAY_MILLIS;
+				} finally {
+					compacting = false;
+				}
+			});
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+
+	/**
+	 * Rewrites the pack with only the current version of each tile, as the next generation
+	 * The bulk of the copy happens without holding the lock - records are never modified once written, so a snapshot of
+	 * the index can be copied while tiles are still being served and stored; anything stored in the meantime is caught up
+	 * while appends are held off, and the write lock is only taken to swap in the new pack
+	 */
+	private void compact() throws IOException {
+		Long2ObjectMap<Entry> snapshot;
+		Pack source;
+		long newGeneration;
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			snapshot = new Long2ObjectOpenHashMap<>(index);
+			source = pack;
+			newGeneration = generation + 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		Path tempFile = folder.resolve(name + "." + newGeneration + ".pack.tmp");
+		Pack target = new Pack(tempFile, false);
+		try {
+			Long2ObjectMap<Entry> newIndex = new Long2ObjectOpenHashMap<>(snapshot.size());
+			for (Long2ObjectMap.Entry<Entry> mapEntry : snapshot.long2ObjectEntrySet()) {
+				copyRecord(source, mapEntry.getLongKey(), mapEntry.getValue(), target, newIndex);
+			}
+
+			// Sync the bulk of the copy before holding anything up; the records caught up below aren't synced, but one that is
+			// lost or cut short by a crash fails its checksum, so the tile is just rendered again
+			target.channel.force(true);
+
+			synchronized (appendLock) {
+				if (closed) {
+					throw new IOException("Tile store was closed during compaction");
+				}
+				// Nothing can be stored while appendLock is held, so the index can be read without the read lock; compaction
+				// is the only thing that replaces the pack, so it is still the source pack
+				for (Long2ObjectMap.Entry<Entry> mapEntry : index.long2ObjectEntrySet()) {
+					if (snapshot.get(mapEntry.getLongKey()) != mapEntry.getValue()) {
+						copyRecord(pack, mapEntry.getLongKey(), mapEntry.getValue(), target, newIndex);
+					}
+				}
+				target.close();
+
+				// The new generation has a new name, so nothing that is open or mapped needs replacing
+				Path newFile = packFile(newGeneration);
+				Files.move(tempFile, newFile, StandardCopyOption.ATOMIC_MOVE);
+				Pack newPack = new Pack(newFile, true);
+				newPack.writePos = target.writePos;
+
+				Pack oldPack;
+				lock.writeLock().lock();
+				try {
+					oldPack = pack;
+					pack = newPack;
+					generation = newGeneration;
+					index.clear();
+					index.putAll(newIndex);
+					liveBytes = 0;
+					for (Entry entry : newIndex.values()) {
+						liveBytes += entry.recordSize();
+					}
+					deadBytes = 0;
+				} finally {
+					lock.writeLock().unlock();
+				}
+
+				oldPack.close();
+				try {
+					Files.deleteIfExists(oldPack.file);
+				} catch (IOException e) {
+					LOGGER.debug("Couldn't delete old tile pack " + oldPack.file + " yet, it will be deleted on restart", e);
+				}
+				LOGGER.info("Compacted tile pack {} to {} tiles", name, newIndex.size());
+			}
+		} catch (IOException | RuntimeException e) {
+			target.close();
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+	}
+
+	private static void copyRecord(Pack source, long key, Entry entry, Pack dest, Long2ObjectMap<Entry> newIndex) throws IOException {
+		ByteBuffer header = source.slice(entry.offset - RECORD_HEADER_SIZE, RECORD_HEADER_SIZE);
+		ByteBuffer data = source.slice(entry.offset, entry.length);
+		newIndex.put(key, new Entry(dest.append(header, data), entry.length, entry.renderTime));
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (appendLock) {
+			lock.writeLock().lock();
+			try {
+				closed = true;
+				pack.close();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+}
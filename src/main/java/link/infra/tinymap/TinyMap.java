@@ -2,7 +2,11 @@ package link.infra.tinymap;
 
 import io.javalin.Javalin;
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
 import net.fabricmc.loader.api.FabricLoader;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,9 +31,23 @@ public class TinyMap implements ModInitializer {
 		Path basePath = FabricLoader.getInstance().getModContainer("tinymap").get().getPath("web");
 		loadConfig(Paths.get(FabricLoader.getInstance().getConfigDir().toString(), "tinymap.properties"));
 		String port = CONFIG.getProperty("web_port");
+		long tileCacheMaxAge = Long.parseLong(CONFIG.getProperty("tile_cache_max_age", "300"));
+		int renderThreads = Integer.parseInt(CONFIG.getProperty("render_threads", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+		float renderTargetMspt = Float.parseFloat(CONFIG.getProperty("render_target_mspt", "40"));
+		float renderMaxMspt = Float.parseFloat(CONFIG.getProperty("render_max_mspt", "50"));
+		RenderThrottle renderThrottle = new RenderThrottle(renderThreads, renderTargetMspt, renderMaxMspt);
+
+		ServerTickEvents.END_SERVER_TICK.register(server -> {
+			// getTickTime is already smoothed over recent ticks, so only adjust once a second
+			if (server.getTicks() % 20 == 0) {
+				renderThrottle.onTickTime(server.getTickTime());
+			}
+		});
+
+		CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> RenderCommand.register(dispatcher, () -> tileGenerator));
 
 		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
-			tileGenerator = new TileGenerator(server);
+			tileGenerator = new TileGenerator(server, tileCacheMaxAge * 1000, renderThrottle);
 			if (httpServer != null) {
 				try {
 					httpServer.stop();
@@ -40,8 +58,33 @@ public class TinyMap implements ModInitializer {
 			httpServer = HttpServer.start(Integer.parseInt(port), basePath, tileGenerator);
 		});
 
+		// Worlds loaded before the server starts are registered when the TileGenerator is created
+		ServerWorldEvents.LOAD.register((server, world) -> {
+			if (tileGenerator != null) {
+				tileGenerator.onWorldLoad(world);
+			}
+		});
+
+		ServerWorldEvents.UNLOAD.register((server, world) -> {
+			if (tileGenerator != null) {
+				tileGenerator.onWorldUnload(world);
+			}
+		});
+
+		// Loaded chunks may not have been saved yet, so the manifest tracks them separately
+		ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
+			if (tileGenerator != null) {
+				tileGenerator.onChunkLoad(world, chunk);
+			}
+		});
+
+		ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+			if (tileGenerator != null) {
+				tileGenerator.onChunkUnload(world, chunk);
+			}
+		});
+
 		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
-			tileGenerator = null;
 			if (httpServer != null) {
 				try {
 					httpServer.stop();
@@ -50,6 +93,10 @@ public class TinyMap implements ModInitializer {
 				}
 			}
 			httpServer = null;
+			if (tileGenerator != null) {
+				tileGenerator.close();
+			}
+			tileGenerator = null;
 		});
 	}
 
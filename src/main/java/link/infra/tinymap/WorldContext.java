@@ -0,0 +1,135 @@
+package link.infra.tinymap;
+
+import link.infra.tinymap.mixin.MinecraftServerAccessor;
+import link.infra.tinymap.mixin.ThreadedAnvilChunkStorageAccessor;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.world.chunk.WorldChunk;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything needed to render and serve the tiles of one world: its digger, tile stores, manifest, region timestamps
+ * and metrics
+ * Created when the world is registered with the TileGenerator, and retired when the world unloads or is replaced
+ * Requests and renders hold a reference while they use the context, so its tile stores are only closed once the last
+ * of them has finished
+ */
+class WorldContext {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	final ServerWorld world;
+	final String name;
+	final BlockDigger digger;
+	final TileManifest manifest;
+	final RegionTimestamps regionTimestamps;
+
+	private final Path storeFolder;
+	private final long tileCacheMaxAgeMillis;
+	private final Executor backgroundExecutor;
+	private final Map<Integer, TileStore> tileStores = new ConcurrentHashMap<>();
+	// One for the TileGenerator's registration, plus one for each request or render using this context
+	private final AtomicInteger references = new AtomicInteger(1);
+	private volatile boolean retired = false;
+	private volatile boolean closed = false;
+
+	final AtomicLong tilesFromStore = new AtomicLong();
+	final AtomicLong tilesRendered = new AtomicLong();
+	final AtomicLong tilesEmpty = new AtomicLong();
+
+	WorldContext(MinecraftServer server, ServerWorld world, long tileCacheMaxAgeMillis, Executor backgroundExecutor) {
+		this.world = world;
+		this.name = nameOf(world);
+		this.digger = new BlockDigger(server, world);
+		this.manifest = new TileManifest(digger.getRegionFolder());
+		this.regionTimestamps = new RegionTimestamps(digger.getRegionFolder());
+		// Chunks loaded from now on are tracked with chunk events; this is created on the server thread, so the chunk
+		// holders can be read safely
+		for (ChunkHolder holder : ((ThreadedAnvilChunkStorageAccessor) world.getChunkManager().threadedAnvilChunkStorage).invokeEntryIterator()) {
+			WorldChunk chunk = holder.getWorldChunk();
+			if (chunk != null) {
+				manifest.onChunkLoad(chunk.getPos().x, chunk.getPos().z);
+			}
+		}
+		this.storeFolder = ((MinecraftServerAccessor) server).getSession().getWorldDirectory(world.getRegistryKey()).toPath().resolve("tinymap");
+		this.tileCacheMaxAgeMillis = tileCacheMaxAgeMillis;
+		this.backgroundExecutor = backgroundExecutor;
+	}
+
+	private static String nameOf(ServerWorld world) {
+		return world.getRegistryKey().getValue().toString();
+	}
+
+	/**
+	 * Takes a reference to this context for a request or render, returning false if it has already been closed
+	 */
+	boolean acquire() {
+		int count;
+		do {
+			count = references.get();
+			if (count == 0) {
+				return false;
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			close();
+		}
+	}
+
+	/**
+	 * Called once the TileGenerator no longer serves this world; it is closed when the last reference is released
+	 */
+	void retire() {
+		retired = true;
+		release();
+	}
+
+	boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Gets the tile store for a zoom level, opening it if necessary, or null if the tile store is disabled or this
+	 * context has been closed
+	 */
+	TileStore getTileStore(int zoom) {
+		if (tileCacheMaxAgeMillis <= 0 || closed) {
+			return null;
+		}
+		return tileStores.computeIfAbsent(zoom, key -> {
+			try {
+				return TileStore.open(storeFolder, "tiles_z" + zoom, backgroundExecutor);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private void close() {
+		closed = true;
+		for (TileStore store : tileStores.values()) {
+			try {
+				store.close();
+			} catch (IOException e) {
+				LOGGER.error("Failed to close tile store for " + name, e);
+			}
+		}
+		tileStores.clear();
+		LOGGER.info("Served {} stored tiles, rendered {} tiles and skipped {} empty tiles for {}",
+			tilesFromStore.get(), tilesRendered.get(), tilesEmpty.get(), name);
+	}
+}
@@ -0,0 +1,19 @@
+package link.infra.tinymap.mixin;
+
+import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ThreadedAnvilChunkStorage;
+import net.minecraft.world.PersistentStateManager;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+import java.util.function.Supplier;
+
+@Mixin(ThreadedAnvilChunkStorage.class)
+public interface ThreadedAnvilChunkStorageAccessor {
+	@Invoker
+	Iterable<ChunkHolder> invokeEntryIterator();
+
+	@Accessor
+	Supplier<PersistentStateManager> getPersistentStateManagerFactory();
+}
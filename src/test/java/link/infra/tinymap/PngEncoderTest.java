@@ -0,0 +1,69 @@
+package link.infra.tinymap;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PngEncoderTest {
+	private static void fillTile(int[] colors) {
+		for (int i = 0; i < colors.length; i++) {
+			int x = i % TileGenerator.TILE_SIZE;
+			int z = i / TileGenerator.TILE_SIZE;
+			// Blocks of flat colour with some noise, like a rendered tile; alpha varies to check it is kept
+			colors[i] = ((x / 16 % 2 == 0) ? 0xff000000 : 0x80000000) | ((z / 16) * 15) << 16 | ((x * 7) & 0xff) << 8 | ((x ^ z) & 0xff);
+		}
+	}
+
+	@Test
+	void encodesReadablePng() throws IOException {
+		TileGenerator.RenderBuffers buffers = new TileGenerator.RenderBuffers();
+		fillTile(buffers.colors);
+		buffers.encode();
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(buffers.encoded.getBuffer(), 0, buffers.encoded.size()));
+		assertNotNull(image);
+		assertEquals(TileGenerator.TILE_SIZE, image.getWidth());
+		assertEquals(TileGenerator.TILE_SIZE, image.getHeight());
+		for (int z = 0; z < TileGenerator.TILE_SIZE; z++) {
+			for (int x = 0; x < TileGenerator.TILE_SIZE; x++) {
+				int abgr = buffers.colors[z * TileGenerator.TILE_SIZE + x];
+				int argb = (abgr & 0xff00ff00) | (abgr & 0xff) << 16 | (abgr >> 16 & 0xff);
+				assertEquals(argb, image.getRGB(x, z), "Pixel " + x + ", " + z);
+			}
+		}
+	}
+
+	@Test
+	void encodingDoesNotAllocate() {
+		Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		TileGenerator.RenderBuffers buffers = new TileGenerator.RenderBuffers();
+		fillTile(buffers.colors);
+		// Warm up, so buffers have grown to their final size and the encoder is compiled
+		for (int i = 0; i < 200; i++) {
+			buffers.encode();
+		}
+
+		int iterations = 100;
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			buffers.encode();
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		// Encoding used to allocate several hundred KiB per tile; allow a little for the measurement itself
+		assertTrue(allocated / iterations < 256, "Allocated " + (allocated / iterations) + " bytes per tile");
+	}
+}